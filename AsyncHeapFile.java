@@ -0,0 +1,550 @@
+package heap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+
+import global.GlobalConst;
+import global.Minibase;
+import global.RID;
+
+/**
+ * Asynchronous facade over a heap file.  Callers get a CompletableFuture
+ * back right away, and the page I/O runs on one I/O thread shared by every
+ * facade in the process, taking HeapFile.bufferLock as the synchronous
+ * HeapFile methods do. <br>
+ * Synchronous HeapFile calls may run alongside this facade, with one
+ * exception: a HeapScan opened directly with openScan is not guarded by
+ * bufferLock, so it must not be used while async requests are running. <br>
+ * Futures are completed on a separate completion executor, so callbacks
+ * never run on (or block) the I/O thread; an insert's future completes only
+ * once its log frame is durable, and inserts waiting together share one
+ * force of the log.  Point reads that are waiting for the same data page are
+ * served by one pin of that page.  At most a fixed number of requests may be
+ * waiting on I/O; further callers block until earlier requests finish their
+ * I/O.
+ */
+public class AsyncHeapFile implements GlobalConst {
+
+  /** Number of records a scan reads before yielding the I/O thread. */
+  protected static final int SCAN_BATCH = 64;
+
+  /**
+   * Runs the buffer manager calls of every facade, one at a time.  Its
+   * thread is a daemon, so it never keeps the JVM alive.
+   */
+  protected static final ExecutorService ioExecutor =
+      Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "heap-io");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // --------------------------------------------------------------------------
+
+  /** The heap file that requests are run against. */
+  protected HeapFile heapFile;
+
+  /** Completes futures and delivers scan records to subscribers. */
+  protected ExecutorService completionExecutor;
+
+  /** Bounds the number of requests waiting on I/O. */
+  protected Semaphore inFlight;
+
+  /** Point reads waiting on each data page, keyed by page id. */
+  protected HashMap<Integer, ArrayList<PendingSelect>> pendingSelects;
+
+  /** Scans not yet closed; only touched on the I/O thread. */
+  protected ArrayList<ScanSubscription> activeScans;
+
+  /** Set once close has been called; new requests are rejected. */
+  protected boolean closed;
+
+  /** Requests and scans not yet finished (guarded by this). */
+  protected int outstanding;
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * A point read waiting for its data page to be pinned.
+   */
+  protected static class PendingSelect {
+
+    /** The record to read. */
+    protected RID rid;
+
+    /** Completed with a copy of the record. */
+    protected CompletableFuture<byte[]> result;
+
+    public PendingSelect(RID rid, CompletableFuture<byte[]> result) {
+      this.rid = rid;
+      this.result = result;
+    }
+
+  } // protected static class PendingSelect
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Wraps the given heap file, allowing at most maxInFlight requests to wait
+   * on I/O at once.
+   *
+   * @throws IllegalArgumentException if maxInFlight is not positive
+   */
+  public AsyncHeapFile(HeapFile heapFile, int maxInFlight) {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("maxInFlight must be positive");
+    }
+    this.heapFile = heapFile;
+    completionExecutor = newCompletionExecutor();
+    inFlight = new Semaphore(maxInFlight);
+    pendingSelects = new HashMap<Integer, ArrayList<PendingSelect>>();
+    activeScans = new ArrayList<ScanSubscription>();
+  }
+
+  /**
+   * Inserts a new record into the file; the future completes with its RID
+   * once the insert is durable.  The record is copied before this returns.
+   *
+   * @throws IllegalArgumentException (through the future) if the record is
+   * too large to fit on one data page
+   * @throws IllegalStateException (through the future) if the file is closed
+   */
+  public CompletableFuture<RID> insertRecordAsync(byte[] record) {
+
+    CompletableFuture<RID> result = new CompletableFuture<RID>();
+    if (null == record) {
+      result.completeExceptionally(new IllegalArgumentException("Record is null"));
+      return result;
+    }
+    if (!begin()) {
+      result.completeExceptionally(new IllegalStateException("File is closed"));
+      return result;
+    }
+
+    // The caller may reuse its array as soon as this returns
+    final byte[] copy = record.clone();
+    inFlight.acquireUninterruptibly();
+    ioExecutor.execute(() -> {
+      RID rid = null;
+      RuntimeException error = null;
+      long lsn = 0;
+      try {
+        rid = heapFile.insertRecordNoWait(copy);
+        lsn = heapFile.getCommitLsn();
+      } catch (RuntimeException exc) {
+        error = exc;
+      }
+      inFlight.release();
+
+      // Wait for the log off the I/O thread, alongside other committers
+      final RID inserted = rid;
+      final RuntimeException failed = error;
+      final long commitLsn = lsn;
+      completionExecutor.execute(() -> {
+        try {
+          if (null == failed) {
+            heapFile.waitForCommit(commitLsn);
+            result.complete(inserted);
+          } else {
+            result.completeExceptionally(failed);
+          }
+        } catch (RuntimeException exc) {
+          result.completeExceptionally(exc);
+        } finally {
+          end();
+        }
+      });
+    });
+    return result;
+
+  } // public CompletableFuture<RID> insertRecordAsync(byte[] record)
+
+  /**
+   * Reads a record from the file, given its rid; the future completes with
+   * a copy of the record.  Reads of the same data page that are waiting
+   * together share a single pin.
+   *
+   * @throws IllegalArgumentException (through the future) if the rid is
+   * invalid or null
+   * @throws IllegalStateException (through the future) if the file is closed
+   */
+  public CompletableFuture<byte[]> selectRecordAsync(RID rid) {
+
+    CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+    if (null == rid || null == rid.pageno) {
+      result.completeExceptionally(new IllegalArgumentException("Invalid RID"));
+      return result;
+    }
+    if (!begin()) {
+      result.completeExceptionally(new IllegalStateException("File is closed"));
+      return result;
+    }
+    inFlight.acquireUninterruptibly();
+
+    // Join the reads already waiting on this page, or start a new group
+    final Integer pid = rid.pageno.pid;
+    synchronized (pendingSelects) {
+      ArrayList<PendingSelect> group = pendingSelects.get(pid);
+      if (null != group) {
+        group.add(new PendingSelect(rid, result));
+        return result;
+      }
+      group = new ArrayList<PendingSelect>();
+      group.add(new PendingSelect(rid, result));
+      pendingSelects.put(pid, group);
+
+      // Scheduled under the lock so no read can join a group that never runs
+      ioExecutor.execute(() -> selectGroup(pid));
+    }
+    return result;
+
+  } // public CompletableFuture<byte[]> selectRecordAsync(RID rid)
+
+  /**
+   * Scans the file.  Records are read on the I/O thread only as the
+   * subscriber requests them, and are delivered in order on the completion
+   * executor.  Each subscriber gets its own scan.
+   */
+  public Flow.Publisher<byte[]> scanAsync() {
+    return subscriber -> {
+      ScanSubscription subscription = new ScanSubscription(subscriber);
+      synchronized (this) {
+        if (!closed) {
+          // Registered ahead of any task close queues, so close can fail it
+          outstanding++;
+          ioExecutor.execute(() -> activeScans.add(subscription));
+          subscription.deliver(() -> subscriber.onSubscribe(subscription));
+          return;
+        }
+      }
+
+      // Nothing is running for this subscriber, so signal it directly
+      subscriber.onSubscribe(new Flow.Subscription() {
+        public void request(long n) {
+        }
+        public void cancel() {
+        }
+      });
+      subscriber.onError(new IllegalStateException("File is closed"));
+    };
+  }
+
+  /**
+   * Stops accepting requests.  Requests already submitted still complete,
+   * and scans still open are failed once those requests are done; the
+   * completion executor is shut down after the last of them.  The shared
+   * I/O thread is left running for other facades.
+   */
+  public synchronized void close() {
+
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (0 == outstanding) {
+      completionExecutor.shutdown();
+      return;
+    }
+
+    // Queued last, so it runs after every request already submitted
+    ioExecutor.execute(() -> {
+      for (ScanSubscription subscription : new ArrayList<ScanSubscription>(activeScans)) {
+        subscription.fail(new IllegalStateException("File is closed"));
+      }
+    });
+
+  } // public synchronized void close()
+
+  /**
+   * Counts a new request, unless the file is closed.
+   *
+   * @return false if the file is closed
+   */
+  protected synchronized boolean begin() {
+    if (closed) {
+      return false;
+    }
+    outstanding++;
+    return true;
+  }
+
+  /**
+   * Counts a request as finished, shutting down the completion executor
+   * after the last one once the file is closed.  Runs on the completion
+   * executor, after the request's future or final signal.
+   */
+  protected synchronized void end() {
+    outstanding--;
+    if (closed && 0 == outstanding) {
+      completionExecutor.shutdown();
+    }
+  }
+
+  /**
+   * Completes the given future on the completion executor, then counts its
+   * request as finished.
+   */
+  protected <T> void complete(CompletableFuture<T> result, T value,
+      RuntimeException error) {
+    completionExecutor.execute(() -> {
+      try {
+        if (null == error) {
+          result.complete(value);
+        } else {
+          result.completeExceptionally(error);
+        }
+      } finally {
+        end();
+      }
+    });
+  }
+
+  /**
+   * Creates the executor that completes futures: a virtual thread per task
+   * where the JDK has them (21 and later), or else a pool of daemon threads.
+   */
+  protected static ExecutorService newCompletionExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException exc) {
+      return Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "heap-completion");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  /**
+   * Serves every read waiting on the given data page with one pin.  Runs on
+   * the I/O thread.
+   */
+  protected void selectGroup(Integer pid) {
+
+    // Take the group; reads arriving from now on start a new one
+    ArrayList<PendingSelect> group;
+    synchronized (pendingSelects) {
+      group = pendingSelects.remove(pid);
+    }
+
+    // Copy the records out, then unpin before anyone is told
+    byte[][] records = new byte[group.size()][];
+    RuntimeException[] errors = new RuntimeException[group.size()];
+    synchronized (HeapFile.bufferLock) {
+      HFPage dataPage = new HFPage();
+      RuntimeException pinError = null;
+      try {
+        Minibase.BufferManager.pinPage(group.get(0).rid.pageno, dataPage,
+            PIN_DISKIO);
+      } catch (RuntimeException exc) {
+        pinError = exc;
+      }
+
+      for (int i = 0; i < group.size(); i++) {
+        if (null != pinError) {
+          errors[i] = pinError;
+          continue;
+        }
+        try {
+          records[i] = dataPage.selectRecord(group.get(i).rid).clone();
+        } catch (RuntimeException exc) {
+          errors[i] = exc;
+        }
+      }
+      if (null == pinError) {
+        Minibase.BufferManager.unpinPage(group.get(0).rid.pageno, UNPIN_CLEAN);
+      }
+    }
+
+    inFlight.release(group.size());
+    for (int i = 0; i < group.size(); i++) {
+      complete(group.get(i).result, records[i], errors[i]);
+    }
+
+  } // protected void selectGroup(Integer pid)
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * One subscriber's scan.  The HeapScan is only touched on the I/O thread,
+   * and only as many records are read as the subscriber has requested.  The
+   * scan counts as one outstanding request until its final signal.
+   */
+  protected class ScanSubscription implements Flow.Subscription {
+
+    /** Receives the records. */
+    protected Flow.Subscriber<? super byte[]> subscriber;
+
+    /** The underlying scan; opened by the first read. */
+    protected HeapScan scan;
+
+    /** Records requested but not yet read. */
+    protected long demand;
+
+    /** Is a read of the scan scheduled on the I/O thread? */
+    protected boolean reading;
+
+    /** Set once the scan is finished, failed, or cancelled. */
+    protected boolean done;
+
+    /** Set once the final signal is queued; later signals are dropped. */
+    protected boolean finished;
+
+    /** Tail of the delivery chain; keeps signals to the subscriber in order. */
+    protected CompletableFuture<Void> delivered;
+
+    public ScanSubscription(Flow.Subscriber<? super byte[]> subscriber) {
+      this.subscriber = subscriber;
+      delivered = CompletableFuture.completedFuture(null);
+    }
+
+    public void request(long n) {
+
+      if (n <= 0) {
+        if (markDone()) {
+          ioExecutor.execute(this::closeScan);
+          finish(() -> subscriber.onError(new IllegalArgumentException(
+              "Scan request must be positive")));
+        }
+        return;
+      }
+
+      synchronized (this) {
+        if (done) {
+          return;
+        }
+        demand = (demand + n < 0) ? Long.MAX_VALUE : demand + n;
+        if (reading) {
+          return;
+        }
+        reading = true;
+      }
+      ioExecutor.execute(this::readBatch);
+
+    } // public void request(long n)
+
+    public void cancel() {
+      if (markDone()) {
+        ioExecutor.execute(this::closeScan);
+        finish(null);
+      }
+    }
+
+    /**
+     * Reads up to SCAN_BATCH requested records, then yields the I/O thread to
+     * other requests.  Runs on the I/O thread.
+     */
+    protected void readBatch() {
+
+      try {
+        if (null == scan) {
+          synchronized (HeapFile.bufferLock) {
+            scan = heapFile.openScan();
+          }
+        }
+        for (int i = 0; i < SCAN_BATCH; i++) {
+          synchronized (this) {
+            if (done || 0 == demand) {
+              reading = false;
+              if (done) {
+                closeScan();
+              }
+              return;
+            }
+            demand--;
+          }
+
+          byte[] record;
+          synchronized (HeapFile.bufferLock) {
+            record = scan.getNext(new RID());
+          }
+          if (null == record) {
+            closeScan();
+            if (markDone()) {
+              finish(() -> subscriber.onComplete());
+            }
+            return;
+          }
+          final byte[] copy = record.clone();
+          deliver(() -> subscriber.onNext(copy));
+        }
+      } catch (RuntimeException exc) {
+        fail(exc);
+        return;
+      }
+
+      // Demand may remain; continue after any other queued I/O
+      ioExecutor.execute(this::readBatch);
+
+    } // protected void readBatch()
+
+    /**
+     * Ends the scan with the given error.  Runs on the I/O thread.
+     */
+    protected void fail(RuntimeException error) {
+      closeScan();
+      if (markDone()) {
+        finish(() -> subscriber.onError(error));
+      }
+    }
+
+    /**
+     * Closes the scan if it was opened.  Runs on the I/O thread.
+     */
+    protected void closeScan() {
+      activeScans.remove(this);
+      if (null != scan) {
+        synchronized (HeapFile.bufferLock) {
+          scan.close();
+        }
+        scan = null;
+      }
+    }
+
+    /**
+     * Marks the scan done.
+     *
+     * @return true if it was not done already
+     */
+    protected synchronized boolean markDone() {
+      if (done) {
+        return false;
+      }
+      done = true;
+      return true;
+    }
+
+    /**
+     * Queues the final signal (if any), then counts the scan as finished.
+     */
+    protected synchronized void finish(Runnable signal) {
+      if (null != signal) {
+        deliver(signal);
+      }
+      finished = true;
+      delivered = delivered.thenRunAsync(AsyncHeapFile.this::end,
+          completionExecutor);
+    }
+
+    /**
+     * Signals the subscriber on the completion executor, after every signal
+     * delivered before it.
+     */
+    protected synchronized void deliver(Runnable signal) {
+      if (finished) {
+        return;
+      }
+      // A subscriber that throws must not stop the signals after it
+      delivered = delivered.thenRunAsync(signal, completionExecutor)
+          .exceptionally(exc -> null);
+    }
+
+  } // protected class ScanSubscription implements Flow.Subscription
+
+} // public class AsyncHeapFile implements GlobalConst
@@ -0,0 +1,570 @@
+package heap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import global.GlobalConst;
+
+/**
+ * A column-oriented snapshot of a heap file, written by
+ * HeapFile.exportColumnar.  Projections and range filters are answered from
+ * the snapshot alone, without touching the heap file. <br>
+ * The snapshot holds one chunk per data page.  A chunk stores each column's
+ * values contiguously (fixed width, in record order), preceded by the
+ * column's min and max, so a range filter skips every chunk whose stats
+ * rule it out and reads only the columns it needs from the rest.  Each
+ * chunk also keeps the page's directory entry and a checksum of the page,
+ * which let the next export copy the chunks of unchanged pages. <br>
+ * File layout (big-endian): magic, version, column count, then per column
+ * the name length, name (UTF-8), type, offset, and width; then the chunks,
+ * each: page id, record count and free count (shorts), page checksum, row
+ * count, per column min and max, then per column the row values; and last
+ * INVALID_PAGEID in place of a page id.
+ */
+public class ColumnarSnapshot implements GlobalConst {
+
+  /** Identifies a snapshot file ("HCOL"). */
+  protected static final int MAGIC = 0x48434F4C;
+
+  /** Version of the file layout. */
+  protected static final int VERSION = 1;
+
+  /** Size of a chunk's page id, counts, checksum, and row count. */
+  protected static final int CHUNK_HEADER = 16;
+
+  // --------------------------------------------------------------------------
+
+  /** The snapshot file. */
+  protected FileChannel channel;
+
+  /** Layout of the exported records. */
+  protected Schema schema;
+
+  /** Sum of the column widths: the bytes each row takes in a chunk. */
+  protected int rowWidth;
+
+  /** The chunks, in file order. */
+  protected ArrayList<Chunk> chunks;
+
+  /** Index of each data page's chunk, keyed by page id. */
+  protected HashMap<Integer, Integer> chunkIndex;
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * What the reader keeps in memory about one chunk.
+   */
+  protected static class Chunk {
+
+    /** File position of the chunk. */
+    protected long position;
+
+    /** Id of the data page the chunk was exported from. */
+    protected int pid;
+
+    /** The page's directory entry when it was exported. */
+    protected short recCnt;
+    protected short freeCnt;
+
+    /** CRC32 of the page when it was exported. */
+    protected int checksum;
+
+    /** Number of rows in the chunk. */
+    protected int rows;
+
+    /** Each column's smallest and largest value; null if there are no rows. */
+    protected byte[][] min;
+    protected byte[][] max;
+
+  } // protected static class Chunk
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Opens the snapshot at the given path and reads its chunk index.
+   *
+   * @throws UncheckedIOException if the file cannot be read or is not a
+   * complete snapshot
+   */
+  public ColumnarSnapshot(Path path) {
+    try {
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+      readIndex();
+    } catch (IOException exc) {
+      close();
+      throw new UncheckedIOException("Cannot read columnar snapshot " + path, exc);
+    }
+  }
+
+  /**
+   * Opens the snapshot at the given path for an incremental export, if it
+   * exists, is readable, and was written with the given schema.
+   *
+   * @return the snapshot, or null if the export must start from scratch
+   */
+  protected static ColumnarSnapshot openPrevious(Path path, Schema schema) {
+    ColumnarSnapshot previous;
+    try {
+      previous = new ColumnarSnapshot(path);
+    } catch (UncheckedIOException exc) {
+      // Missing or unreadable: a full export replaces it
+      return null;
+    }
+    if (!previous.getSchema().equals(schema)) {
+      previous.close();
+      return null;
+    }
+    return previous;
+  }
+
+  /**
+   * Gets the layout of the exported records.
+   */
+  public Schema getSchema() {
+    return schema;
+  }
+
+  /**
+   * Gets the number of chunks, one per data page.
+   */
+  public int getChunkCount() {
+    return chunks.size();
+  }
+
+  /**
+   * Gets the number of records in the snapshot.
+   */
+  public int getRowCount() {
+    int count = 0;
+    for (Chunk chunk : chunks) {
+      count += chunk.rows;
+    }
+    return count;
+  }
+
+  /**
+   * Reads the given columns of every record.
+   *
+   * @return one array of column values per record, in the order of columns
+   */
+  public ArrayList<byte[][]> select(int[] columns) {
+    return select(columns, -1, null, null);
+  }
+
+  /**
+   * Reads the given columns of every record whose filter column lies
+   * between low and high, inclusive.  Chunks whose min and max rule out the
+   * range are skipped without being read.
+   *
+   * @param columns indexes of the columns to return
+   * @param filterColumn index of the column to filter on, or -1 for none
+   * @param low smallest value to return, encoded as the column is; null for
+   * no lower bound
+   * @param high largest value to return; null for no upper bound
+   * @return one array of column values per matching record, in the order of
+   * columns; records come in heap file order
+   * @throws IllegalArgumentException if a column index or bound is invalid
+   */
+  public ArrayList<byte[][]> select(int[] columns, int filterColumn,
+      byte[] low, byte[] high) {
+
+    for (int column : columns) {
+      checkColumn(column);
+    }
+    if (filterColumn >= 0) {
+      checkColumn(filterColumn);
+      int width = schema.getWidth(filterColumn);
+      if ((null != low && low.length != width)
+          || (null != high && high.length != width)) {
+        throw new IllegalArgumentException("Bound does not match the column width");
+      }
+    }
+
+    ArrayList<byte[][]> result = new ArrayList<byte[][]>();
+    try {
+      for (Chunk chunk : chunks) {
+        if (0 == chunk.rows) {
+          continue;
+        }
+
+        // Rows of this chunk that pass the filter
+        boolean[] match = new boolean[chunk.rows];
+        int matches = chunk.rows;
+        if (filterColumn >= 0) {
+          if ((null != low && schema.compare(filterColumn, chunk.max[filterColumn], 0, low, 0) < 0)
+              || (null != high && schema.compare(filterColumn, chunk.min[filterColumn], 0, high, 0) > 0)) {
+            continue;
+          }
+          int width = schema.getWidth(filterColumn);
+          byte[] values = readColumn(chunk, filterColumn);
+          matches = 0;
+          for (int row = 0; row < chunk.rows; row++) {
+            match[row] = (null == low || schema.compare(filterColumn, values, row * width, low, 0) >= 0)
+                && (null == high || schema.compare(filterColumn, values, row * width, high, 0) <= 0);
+            if (match[row]) {
+              matches++;
+            }
+          }
+          if (0 == matches) {
+            continue;
+          }
+        } else {
+          Arrays.fill(match, true);
+        }
+
+        // Read only the projected columns, then pick out the matching rows
+        byte[][][] rows = new byte[matches][columns.length][];
+        for (int i = 0; i < columns.length; i++) {
+          int width = schema.getWidth(columns[i]);
+          byte[] values = readColumn(chunk, columns[i]);
+          int out = 0;
+          for (int row = 0; row < chunk.rows; row++) {
+            if (match[row]) {
+              rows[out][i] = new byte[width];
+              System.arraycopy(values, row * width, rows[out][i], 0, width);
+              out++;
+            }
+          }
+        }
+        for (byte[][] row : rows) {
+          result.add(row);
+        }
+      }
+    } catch (IOException exc) {
+      throw new UncheckedIOException("Cannot read columnar snapshot", exc);
+    }
+    return result;
+
+  } // public ArrayList<byte[][]> select(int[] columns, int filterColumn, byte[] low, byte[] high)
+
+  /**
+   * Closes the snapshot file.
+   */
+  public void close() {
+    if (null != channel) {
+      try {
+        channel.close();
+      } catch (IOException exc) {
+        throw new UncheckedIOException("Cannot close columnar snapshot", exc);
+      }
+      channel = null;
+    }
+  }
+
+  /**
+   * Gets the index of the chunk that can stand for the given data page in
+   * a new export: one exported from that page while it had the same
+   * directory entry and checksum.
+   *
+   * @return the chunk's index, or -1 if the page must be exported again
+   */
+  protected int findChunk(int pid, short recCnt, short freeCnt, int checksum) {
+    Integer index = chunkIndex.get(pid);
+    if (null == index) {
+      return -1;
+    }
+    Chunk chunk = chunks.get(index);
+    if (chunk.recCnt != recCnt || chunk.freeCnt != freeCnt
+        || chunk.checksum != checksum) {
+      return -1;
+    }
+    return index;
+  }
+
+  /**
+   * Gets the size in bytes of a chunk with the given number of rows.
+   */
+  protected long getChunkLength(int rows) {
+    return CHUNK_HEADER + 2L * rowWidth + (long) rows * rowWidth;
+  }
+
+  /**
+   * Reads the header and every chunk's header and stats, skipping the
+   * column values.
+   */
+  protected void readIndex() throws IOException {
+
+    ByteBuffer header = ByteBuffer.allocate(12);
+    readFully(header, 0);
+    if (MAGIC != header.getInt(0) || VERSION != header.getInt(4)) {
+      throw new IOException("Not a columnar snapshot");
+    }
+    long position = 12;
+    schema = new Schema();
+    int columnCount = header.getInt(8);
+    for (int i = 0; i < columnCount; i++) {
+      ByteBuffer length = ByteBuffer.allocate(4);
+      readFully(length, position);
+      ByteBuffer column = ByteBuffer.allocate(length.getInt(0) + 12);
+      readFully(column, position + 4);
+      byte[] name = new byte[length.getInt(0)];
+      System.arraycopy(column.array(), 0, name, 0, name.length);
+      try {
+        schema.addColumn(new String(name, StandardCharsets.UTF_8),
+            column.getInt(name.length), column.getInt(name.length + 4),
+            column.getInt(name.length + 8));
+      } catch (IllegalArgumentException exc) {
+        throw new IOException("Invalid column in columnar snapshot", exc);
+      }
+      position += 4 + column.capacity();
+      rowWidth += schema.getWidth(i);
+    }
+
+    chunks = new ArrayList<Chunk>();
+    chunkIndex = new HashMap<Integer, Integer>();
+    ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER);
+    while (true) {
+      // The terminator is a lone page id
+      ByteBuffer pid = ByteBuffer.allocate(4);
+      readFully(pid, position);
+      if (INVALID_PAGEID == pid.getInt(0)) {
+        break;
+      }
+
+      chunkHeader.clear();
+      readFully(chunkHeader, position);
+      Chunk chunk = new Chunk();
+      chunk.position = position;
+      chunk.pid = chunkHeader.getInt(0);
+      chunk.recCnt = chunkHeader.getShort(4);
+      chunk.freeCnt = chunkHeader.getShort(6);
+      chunk.checksum = chunkHeader.getInt(8);
+      chunk.rows = chunkHeader.getInt(12);
+      if (chunk.rows < 0) {
+        throw new IOException("Invalid chunk in columnar snapshot");
+      }
+
+      ByteBuffer stats = ByteBuffer.allocate(2 * rowWidth);
+      readFully(stats, position + CHUNK_HEADER);
+      if (chunk.rows > 0) {
+        chunk.min = new byte[columnCount][];
+        chunk.max = new byte[columnCount][];
+        int offset = 0;
+        for (int i = 0; i < columnCount; i++) {
+          chunk.min[i] = new byte[schema.getWidth(i)];
+          chunk.max[i] = new byte[schema.getWidth(i)];
+          System.arraycopy(stats.array(), offset, chunk.min[i], 0, schema.getWidth(i));
+          System.arraycopy(stats.array(), offset + schema.getWidth(i), chunk.max[i], 0,
+              schema.getWidth(i));
+          offset += 2 * schema.getWidth(i);
+        }
+      }
+
+      chunkIndex.put(chunk.pid, chunks.size());
+      chunks.add(chunk);
+      position += getChunkLength(chunk.rows);
+    }
+
+  } // protected void readIndex()
+
+  /**
+   * Reads every value of the given column in the given chunk.
+   */
+  protected byte[] readColumn(Chunk chunk, int column) throws IOException {
+    long position = chunk.position + CHUNK_HEADER + 2L * rowWidth;
+    for (int i = 0; i < column; i++) {
+      position += (long) chunk.rows * schema.getWidth(i);
+    }
+    ByteBuffer values = ByteBuffer.allocate(chunk.rows * schema.getWidth(column));
+    readFully(values, position);
+    return values.array();
+  }
+
+  /**
+   * Copies the given chunk, unchanged, to a new snapshot.
+   */
+  protected void copyChunk(int index, DataOutputStream out) throws IOException {
+    Chunk chunk = chunks.get(index);
+    ByteBuffer bytes = ByteBuffer.allocate((int) getChunkLength(chunk.rows));
+    readFully(bytes, chunk.position);
+    out.write(bytes.array());
+  }
+
+  /**
+   * Throws IllegalArgumentException if the given column index is invalid.
+   */
+  protected void checkColumn(int column) {
+    if (column < 0 || column >= schema.getColumnCount()) {
+      throw new IllegalArgumentException("Invalid column " + column);
+    }
+  }
+
+  /**
+   * Fills the given buffer from the snapshot file, starting at the given
+   * position.
+   */
+  protected void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("Unexpected end of columnar snapshot");
+      }
+      position += read;
+    }
+  }
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Writes a new snapshot to a temporary file next to its target, which it
+   * replaces only once the snapshot is complete, so readers never see a
+   * partial snapshot.
+   */
+  protected static class Writer {
+
+    /** Where the finished snapshot goes. */
+    protected Path target;
+
+    /** The snapshot being written. */
+    protected Path temp;
+
+    /** Layout of the records. */
+    protected Schema schema;
+
+    /** Writes to temp. */
+    protected DataOutputStream out;
+
+    /**
+     * Creates the temporary file and writes the header.
+     */
+    public Writer(Path target, Schema schema) {
+      this.target = target;
+      this.schema = schema;
+      try {
+        Path dir = target.toAbsolutePath().getParent();
+        temp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(schema.getColumnCount());
+        for (int i = 0; i < schema.getColumnCount(); i++) {
+          byte[] name = schema.getName(i).getBytes(StandardCharsets.UTF_8);
+          out.writeInt(name.length);
+          out.write(name);
+          out.writeInt(schema.getType(i));
+          out.writeInt(schema.getOffset(i));
+          out.writeInt(schema.getWidth(i));
+        }
+      } catch (IOException exc) {
+        abort();
+        throw new UncheckedIOException("Cannot create columnar snapshot " + target, exc);
+      }
+    }
+
+    /**
+     * Writes one data page's records as a chunk.
+     *
+     * @throws IllegalArgumentException if a record is shorter than the schema
+     */
+    public void writeChunk(int pid, short recCnt, short freeCnt, int checksum,
+        ArrayList<byte[]> records) {
+
+      int length = schema.getRecordLength();
+      for (byte[] record : records) {
+        if (record.length < length) {
+          throw new IllegalArgumentException(
+              "Record on page " + pid + " is shorter than the schema");
+        }
+      }
+
+      try {
+        out.writeInt(pid);
+        out.writeShort(recCnt);
+        out.writeShort(freeCnt);
+        out.writeInt(checksum);
+        out.writeInt(records.size());
+
+        // Each column's min and max; zeros for an empty chunk
+        for (int i = 0; i < schema.getColumnCount(); i++) {
+          int offset = schema.getOffset(i);
+          int width = schema.getWidth(i);
+          if (records.isEmpty()) {
+            out.write(new byte[2 * width]);
+            continue;
+          }
+          byte[] min = records.get(0);
+          byte[] max = records.get(0);
+          for (byte[] record : records) {
+            if (schema.compare(i, record, offset, min, offset) < 0) {
+              min = record;
+            }
+            if (schema.compare(i, record, offset, max, offset) > 0) {
+              max = record;
+            }
+          }
+          out.write(min, offset, width);
+          out.write(max, offset, width);
+        }
+
+        // Then each column's values, in record order
+        for (int i = 0; i < schema.getColumnCount(); i++) {
+          for (byte[] record : records) {
+            out.write(record, schema.getOffset(i), schema.getWidth(i));
+          }
+        }
+      } catch (IOException exc) {
+        throw new UncheckedIOException("Cannot write columnar snapshot", exc);
+      }
+
+    } // public void writeChunk(int pid, short recCnt, short freeCnt, int checksum, ArrayList<byte[]> records)
+
+    /**
+     * Copies a chunk of the previous snapshot.
+     */
+    public void copyChunk(ColumnarSnapshot previous, int index) {
+      try {
+        previous.copyChunk(index, out);
+      } catch (IOException exc) {
+        throw new UncheckedIOException("Cannot copy columnar snapshot chunk", exc);
+      }
+    }
+
+    /**
+     * Ends the snapshot and moves it over the target.
+     */
+    public void finish() {
+      try {
+        out.writeInt(INVALID_PAGEID);
+        out.close();
+        out = null;
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        temp = null;
+      } catch (IOException exc) {
+        throw new UncheckedIOException("Cannot finish columnar snapshot " + target, exc);
+      }
+    }
+
+    /**
+     * Discards the snapshot unless it was finished.
+     */
+    public void abort() {
+      try {
+        if (null != out) {
+          out.close();
+          out = null;
+        }
+        if (null != temp) {
+          Files.deleteIfExists(temp);
+          temp = null;
+        }
+      } catch (IOException exc) {
+        // Nothing more to do; the temporary file is just left behind
+      }
+    }
+
+  } // protected static class Writer
+
+} // public class ColumnarSnapshot implements GlobalConst
@@ -1,5 +1,14 @@
 package heap; 
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
 import global.GlobalConst;
 import global.Minibase;
 import global.PageId;
@@ -39,6 +48,61 @@ public class HeapFile implements GlobalConst {
   /** First page of the directory for this heap file. */
   protected PageId headId;
 
+  /** Redo log for this heap file's changes, or null if it is not logged. */
+  protected HeapLog log;
+
+  /**
+   * Pages dirtied (true) or freed (false) by the operation in progress, in
+   * the order last seen; logged when the operation ends.
+   */
+  protected LinkedHashMap<Integer, Boolean> opPages =
+      new LinkedHashMap<Integer, Boolean>();
+
+  /** Log position of the last operation each thread ran; see waitForCommit. */
+  protected static final ThreadLocal<Long> commitLsn = new ThreadLocal<Long>();
+
+  /**
+   * Held by every heap file operation while it touches the buffer manager,
+   * which is not safe for concurrent use.  Waiting for the log is done
+   * outside it, so concurrent operations share log forces.  HeapScan does
+   * not take it, so scans must not run alongside other operations.
+   */
+  protected static final Object bufferLock = new Object();
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * In-memory summary of one directory page, used by getAvailPage to skip
+   * directory pages without pinning them.
+   */
+  protected static class DirSummary {
+
+    /** The largest free count of any entry on the directory page. */
+    protected short maxFreeCnt;
+
+    /** Id of the next directory page. */
+    protected int nextPid;
+
+    /** Does the directory page have no room for another entry? */
+    protected boolean entriesFull;
+
+  } // protected static class DirSummary
+
+  /**
+   * Summaries of directory pages, keyed by page id.  Page ids are unique
+   * across files, so this is shared by every open instance of every heap
+   * file; any change to a directory page must drop its summary.
+   */
+  protected static final HashMap<Integer, DirSummary> dirSummaries =
+      new HashMap<Integer, DirSummary>();
+
+  /**
+   * The buffer manager the summaries were taken under.  Page ids are only
+   * unique within one database, so a new buffer manager (a new or reopened
+   * database) starts an empty cache.
+   */
+  protected static Object summaryOwner;
+
   // --------------------------------------------------------------------------
 
   /**
@@ -48,8 +112,20 @@ public class HeapFile implements GlobalConst {
    * requires no file library entry.
    */
   public HeapFile(String name) {
+	  this(name, null);
+  }
+
+  /**
+   * Opens or creates a heap file as HeapFile(String) does, logging every
+   * change to the given redo log (one log per heap file).  Insert, update,
+   * and delete return only once their changes are durable in the log.  If
+   * the log shows the file was not shut down cleanly, it is replayed and the
+   * directory is rebuilt from the data pages before the file is used.
+   */
+  public HeapFile(String name, HeapLog log) {
 	  
 	  fileName = name;
+	  this.log = log;
 
 	  if (null != name)
 	  {
@@ -59,6 +135,18 @@ public class HeapFile implements GlobalConst {
 		  if (null != pageId)
 		  {
 			  headId = pageId;
+			  
+			  // Redo the log, then repair the directory from the data pages
+			  if (null != log && log.needsRecovery())
+			  {
+				  synchronized (bufferLock)
+				  {
+					  log.replay();
+					  clearDirSummaries();
+					  recoverDirectory();
+					  log.checkpoint();
+				  }
+			  }
 		  }
 		  else
 		  {
@@ -71,7 +159,7 @@ public class HeapFile implements GlobalConst {
 		  CreateEmptyHeapFile();
 	  }
 
-  } // public HeapFile(String name)
+  } // public HeapFile(String name, HeapLog log)
 
   /**
    * Called by the garbage collector when there are no more references to the
@@ -92,6 +180,23 @@ public class HeapFile implements GlobalConst {
    */
   public void deleteFile() {
 	  
+	  synchronized (bufferLock)
+	  {
+		  // Nothing may be replayed into the pages once they are freed
+		  if (null != log)
+		  {
+			  log.checkpoint();
+		  }
+		  doDeleteFile();
+	  }
+
+  } // public void deleteFile()
+
+  /**
+   * Helper method for deleteFile; frees the pages.
+   */
+  protected void doDeleteFile() {
+	  
 	  PageId nextDirectoryPageId = new PageId();
 	  DirPage directoryPage = new DirPage();
 	  
@@ -103,12 +208,17 @@ public class HeapFile implements GlobalConst {
 		  // Hit every data page referenced by this directory page and free that page
 		  for (int i = 0; i < directoryPage.getEntryCnt(); i++)
 		  {
-			  // Free the page
-			  Minibase.BufferManager.freePage(directoryPage.getPageId(i));
+			  // Free the page; files written before deletePage maintained the
+			  // entry count can hold stale entries whose page id is 0
+			  if (directoryPage.getPageId(i).pid > 0)
+			  {
+				  Minibase.BufferManager.freePage(directoryPage.getPageId(i));
+			  }
 		  }
 		  // We have freed all the data pages referenced by this page
 		  // so free this directory page and move to the next directory page
 		  nextDirectoryPageId = directoryPage.getNextPage();
+	      forgetDirPage(directoryPage.getCurPage());
 	      Minibase.BufferManager.unpinPage(directoryPage.getCurPage(), UNPIN_CLEAN);
 	      Minibase.BufferManager.freePage(directoryPage.getCurPage());
 		  
@@ -120,7 +230,7 @@ public class HeapFile implements GlobalConst {
 		  }
 	  } while (INVALID_PAGEID != nextDirectoryPageId.pid);
 
-  } // public void deleteFile()
+  } // protected void doDeleteFile()
 
   /**
    * Inserts a new record into the file and returns its RID.
@@ -135,6 +245,33 @@ public class HeapFile implements GlobalConst {
    */
   public RID insertRecord(byte[] record) throws IllegalArgumentException {
 	  
+	  RID recordId = insertRecordNoWait(record);
+	  waitForCommit(getCommitLsn());
+	  return recordId;
+
+  } // public RID insertRecord(byte[] record)
+
+  /**
+   * Inserts a record as insertRecord does, but returns once its change is
+   * appended to the log rather than durable; see getCommitLsn.
+   */
+  protected RID insertRecordNoWait(byte[] record) {
+	  
+	  synchronized (bufferLock)
+	  {
+		  beginOp();
+		  RID recordId = doInsertRecord(record);
+		  endOp();
+		  return recordId;
+	  }
+
+  } // protected RID insertRecordNoWait(byte[] record)
+
+  /**
+   * Helper method for insertRecord; makes the change.
+   */
+  protected RID doInsertRecord(byte[] record) {
+	  
 	  HFPage dataPage = new HFPage();
 	  
 	  // Find a page with sufficient free space for this record
@@ -151,13 +288,11 @@ public class HeapFile implements GlobalConst {
 	  updateDirEntry(dataPageId, 1, dataPage.getFreeSpace());
 	  
 	  // Unpin (save) the data page
-      Minibase.BufferManager.unpinPage(dataPageId, UNPIN_DIRTY);
+      unpinDirty(dataPageId);
       
       return recordId;
 	  
-	  
-	
-   } // public RID insertRecord(byte[] record)
+   } // protected RID doInsertRecord(byte[] record)
 
   /**
    * Reads a record from the file, given its rid.
@@ -169,18 +304,173 @@ public class HeapFile implements GlobalConst {
 	  HFPage dataPage = new HFPage();
 	  byte[] record;
 	  
-	  // Pin the data page so that we can select the record 
-      Minibase.BufferManager.pinPage(rid.pageno, dataPage, PIN_DISKIO);
-      
-      // Will throw IllegalArgumentException if the rid is invalid
-      record = dataPage.selectRecord(rid).clone();
-      
-      // Unpin the data page to since we are done with it
-      Minibase.BufferManager.unpinPage(rid.pageno, UNPIN_CLEAN);
+	  synchronized (bufferLock)
+	  {
+		  // Pin the data page so that we can select the record 
+	      Minibase.BufferManager.pinPage(rid.pageno, dataPage, PIN_DISKIO);
+	      
+	      try
+	      {
+		      // Will throw IllegalArgumentException if the rid is invalid
+		      record = dataPage.selectRecord(rid).clone();
+	      }
+	      finally
+	      {
+		      // Unpin the data page to since we are done with it
+		      Minibase.BufferManager.unpinPage(rid.pageno, UNPIN_CLEAN);
+	      }
+	  }
 
       return record;
   } // public byte[] selectRecord(RID rid)
 
+  /**
+   * Reads a batch of records from the file, given their rids.  The rids are
+   * visited in page and slot order so each distinct data page is pinned only
+   * once.  Records are passed to out in that order, or in the original order
+   * of rids if inOrder is set.  An invalid rid is reported to out and does
+   * not abort the rest of the batch.  No page is pinned while out is called.
+   */
+  public void selectRecords(final RID[] rids, RecordConsumer out, boolean inOrder) {
+
+	  HFPage dataPage = new HFPage();
+	  byte[][] records = new byte[rids.length][];
+	  IllegalArgumentException[] errors = new IllegalArgumentException[rids.length];
+	  
+	  // Set aside rids that cannot be sorted by page; only the others are visited
+	  ArrayList<Integer> valid = new ArrayList<Integer>();
+	  for (int i = 0; i < rids.length; i++)
+	  {
+		  if (null == rids[i] || null == rids[i].pageno)
+		  {
+			  errors[i] = new IllegalArgumentException("Invalid rid!");
+			  if (!inOrder)
+			  {
+				  out.invalid(i, rids[i], errors[i]);
+			  }
+		  }
+		  else
+		  {
+			  valid.add(i);
+		  }
+	  }
+	  
+	  // Sort the batch positions by page, then slot
+	  Integer[] order = valid.toArray(new Integer[valid.size()]);
+	  Arrays.sort(order, new Comparator<Integer>() {
+		  public int compare(Integer a, Integer b) {
+			  RID ridA = rids[a];
+			  RID ridB = rids[b];
+			  if (ridA.pageno.pid != ridB.pageno.pid)
+			  {
+				  return ridA.pageno.pid < ridB.pageno.pid ? -1 : 1;
+			  }
+			  return ridA.slotno < ridB.slotno ? -1 : (ridA.slotno == ridB.slotno ? 0 : 1);
+		  }
+	  });
+	  
+	  int next = 0;
+	  while (next < order.length)
+	  {
+		  // Find the run of requests on this data page
+		  PageId dataPageId = rids[order[next]].pageno;
+		  int end = next + 1;
+		  while (end < order.length && rids[order[end]].pageno.pid == dataPageId.pid)
+		  {
+			  end++;
+		  }
+		  
+		  synchronized (bufferLock)
+		  {
+			  // Pin the data page once for the whole run
+			  boolean pinned = true;
+			  try
+			  {
+				  Minibase.BufferManager.pinPage(dataPageId, dataPage, PIN_DISKIO);
+			  }
+			  catch (IllegalArgumentException exc)
+			  {
+				  pinned = false;
+				  for (int i = next; i < end; i++)
+				  {
+					  errors[order[i]] = exc;
+				  }
+			  }
+		  
+			  // Copy the run's records out of the page
+			  if (pinned)
+			  {
+				  try
+				  {
+					  for (int i = next; i < end; i++)
+					  {
+						  try
+						  {
+							  records[order[i]] = dataPage.selectRecord(rids[order[i]]).clone();
+						  }
+						  catch (IllegalArgumentException exc)
+						  {
+							  errors[order[i]] = exc;
+						  }
+					  }
+				  }
+				  finally
+				  {
+					  // Unpin the data page since we are done with it
+					  Minibase.BufferManager.unpinPage(dataPageId, UNPIN_CLEAN);
+				  }
+			  }
+		  }
+		  
+		  // Emit the run now that the page is unpinned, unless it must wait for the original order
+		  if (!inOrder)
+		  {
+			  for (int i = next; i < end; i++)
+			  {
+				  emitRecord(out, order[i], rids, records, errors);
+			  }
+		  }
+		  next = end;
+	  }
+	  
+	  // Emit the held back results in the original order
+	  if (inOrder)
+	  {
+		  for (int i = 0; i < rids.length; i++)
+		  {
+			  emitRecord(out, i, rids, records, errors);
+		  }
+	  }
+
+  } // public void selectRecords(RID[] rids, RecordConsumer out, boolean inOrder)
+
+  /**
+   * Helper method for selectRecords; passes the result at the given index to out.
+   */
+  protected void emitRecord(RecordConsumer out, int index, RID[] rids,
+      byte[][] records, IllegalArgumentException[] errors) {
+
+	  if (null == errors[index])
+	  {
+		  out.accept(index, rids[index], records[index]);
+	  }
+	  else
+	  {
+		  out.invalid(index, rids[index], errors[index]);
+	  }
+	  // Let the record be collected once it has been handed off
+	  records[index] = null;
+
+  } // protected void emitRecord(RecordConsumer, int, RID[], byte[][], IllegalArgumentException[])
+
+  /**
+   * Reads a batch of records from the file, given their rids, passing them to
+   * out in page and slot order.
+   */
+  public void selectRecords(RID[] rids, RecordConsumer out) {
+	  selectRecords(rids, out, false);
+  }
+
   /**
    * Updates the specified record in the heap file.
    * 
@@ -188,6 +478,21 @@ public class HeapFile implements GlobalConst {
    */
   public void updateRecord(RID rid, byte[] newRecord) throws IllegalArgumentException {
 
+	  synchronized (bufferLock)
+	  {
+		  beginOp();
+		  doUpdateRecord(rid, newRecord);
+		  endOp();
+	  }
+	  waitForCommit(getCommitLsn());
+
+  } // public void updateRecord(RID rid, byte[] newRecord)
+
+  /**
+   * Helper method for updateRecord; makes the change.
+   */
+  protected void doUpdateRecord(RID rid, byte[] newRecord) {
+
 	  HFPage dataPage = new HFPage();
 	  
 	  // Pin the data page so that we can update the record
@@ -198,9 +503,9 @@ public class HeapFile implements GlobalConst {
 	  dataPage.updateRecord(rid, newRecord);
 	  
 	  // Unpin the data page to save the changes
-      Minibase.BufferManager.unpinPage(rid.pageno, UNPIN_DIRTY);
+      unpinDirty(rid.pageno);
 
-  } // public void updateRecord(RID rid, byte[] newRecord)
+  } // protected void doUpdateRecord(RID rid, byte[] newRecord)
 
   /**
    * Deletes the specified record from the heap file.
@@ -210,6 +515,21 @@ public class HeapFile implements GlobalConst {
    */
   public void deleteRecord(RID rid) throws IllegalArgumentException {
 	  
+	  synchronized (bufferLock)
+	  {
+		  beginOp();
+		  doDeleteRecord(rid);
+		  endOp();
+	  }
+	  waitForCommit(getCommitLsn());
+
+  } // public void deleteRecord(RID rid)
+
+  /**
+   * Helper method for deleteRecord; makes the change.
+   */
+  protected void doDeleteRecord(RID rid) {
+	  
 	  HFPage dataPage = new HFPage();
 	  
 	  // Pin the data page so that we can delete the record and check the rid
@@ -223,18 +543,30 @@ public class HeapFile implements GlobalConst {
       int freeSpace = dataPage.getFreeSpace();
       
       // Unpin this dataPage to save the changes
-      Minibase.BufferManager.unpinPage(rid.pageno, UNPIN_DIRTY);
+      unpinDirty(rid.pageno);
       
       // Update our entry: 1 less record and a free count that increases by the size of the freed slot
       updateDirEntry(rid.pageno, -1, freeSpace);
       
-  } // public void deleteRecord(RID rid)
+  } // protected void doDeleteRecord(RID rid)
 
   /**
    * Gets the number of records in the file.
    */
   public int getRecCnt() {
 
+	  synchronized (bufferLock)
+	  {
+		  return doGetRecCnt();
+	  }
+
+  } // public int getRecCnt()
+
+  /**
+   * Helper method for getRecCnt; walks the directory.
+   */
+  protected int doGetRecCnt() {
+
 	  DirPage directoryPage = new DirPage();
 	  PageId nextDirectoryPageId = new PageId();
 	  int count = 0;
@@ -266,10 +598,228 @@ public class HeapFile implements GlobalConst {
 	  
 	  return count;
 
-  } // public int getRecCnt()
+  } // protected int doGetRecCnt()
+
+  /**
+   * Recomputes every directory entry's record count and free count from the
+   * data page it references.  Data pages are the authority after a crash:
+   * a failure between writing a data page and its directory entry leaves
+   * the directory stale, and this brings it back in line.  Entries for data
+   * pages that turn out to be empty are removed, as are stale entries left
+   * by files written before deletePage maintained the entry count.
+   * When the file has a log, this runs automatically on open, after the log
+   * is replayed.
+   */
+  public void recoverDirectory() {
+
+	  synchronized (bufferLock)
+	  {
+		  beginOp();
+		  doRecoverDirectory();
+		  endOp();
+	  }
+	  waitForCommit(getCommitLsn());
+
+  } // public void recoverDirectory()
+
+  /**
+   * Helper method for recoverDirectory; makes the repairs.
+   */
+  protected void doRecoverDirectory() {
+
+	  DirPage directoryPage = new DirPage();
+	  HFPage dataPage = new HFPage();
+	  PageId nextDirectoryPageId = new PageId();
+	  ArrayList<PageId> emptyPageIds = new ArrayList<PageId>();
+
+	  // Read the head directory page
+	  Minibase.BufferManager.pinPage(headId, directoryPage, PIN_DISKIO);
+
+	  do
+	  {
+		  // Correct each entry on this directory page from its data page
+		  int i = 0;
+		  while (i < directoryPage.getEntryCnt())
+		  {
+			  PageId dataPageId = directoryPage.getPageId(i);
+			  
+			  // Files written before deletePage maintained the entry count can
+			  // hold stale trailing entries; drop them without reading page 0
+			  if (dataPageId.pid <= 0)
+			  {
+				  directoryPage.compact(i);
+				  directoryPage.setEntryCnt((short) (directoryPage.getEntryCnt() - 1));
+				  continue;
+			  }
+			  Minibase.BufferManager.pinPage(dataPageId, dataPage, PIN_DISKIO);
+
+			  // Count the live records actually on the data page
+			  short count = 0;
+			  for (RID rid = dataPage.firstRecord(); rid != null; rid = dataPage.nextRecord(rid))
+			  {
+				  count++;
+			  }
+			  directoryPage.setRecCnt(i, count);
+			  directoryPage.setFreeCnt(i, dataPage.getFreeSpace());
+
+			  Minibase.BufferManager.unpinPage(dataPageId, UNPIN_CLEAN);
+
+			  // Empty pages are removed once the walk is done, since removing
+			  // them now would shift the entries we have yet to visit
+			  if (count < 1)
+			  {
+				  emptyPageIds.add(dataPageId);
+			  }
+			  i++;
+		  }
+		  // Move on to the next directory page
+		  nextDirectoryPageId = directoryPage.getNextPage();
+
+		  // Unpin the current directory page to save the corrected entries
+		  forgetDirPage(directoryPage.getCurPage());
+		  unpinDirty(directoryPage.getCurPage());
+
+		  if (INVALID_PAGEID != nextDirectoryPageId.pid)
+		  {
+			  // pin the next directory page for the next pass through the loop
+			  Minibase.BufferManager.pinPage(nextDirectoryPageId, directoryPage, PIN_DISKIO);
+		  }
+	  } while (INVALID_PAGEID != nextDirectoryPageId.pid);
+
+	  // A record count of zero makes updateDirEntry delete the data page, and
+	  // the directory page too if it becomes empty
+	  for (PageId emptyPageId : emptyPageIds)
+	  {
+		  updateDirEntry(emptyPageId, 0, 0);
+	  }
+
+  } // protected void doRecoverDirectory()
+
+  /**
+   * Writes a column-oriented snapshot of the file to the given path, for
+   * analytic scans that read it back with ColumnarSnapshot instead of
+   * decoding every record.  Records are split into columns by the schema. <br>
+   * The export is incremental: if the path already holds a snapshot with
+   * the same schema, each data page whose directory entry and checksum are
+   * unchanged has its chunk copied from it, and only the other pages are
+   * decoded.  The checksum catches updates that keep a record's size, which
+   * leave the directory entry as it was.  Every data page is still read
+   * once; decoding and splitting the records is what is saved.  The old
+   * snapshot is replaced only once the new one is complete.  Writers are
+   * held off while the file is read, so the snapshot is consistent.
+   *
+   * @return the number of data pages decoded (the rest were copied)
+   * @throws IllegalArgumentException if a record is shorter than the schema
+   * @throws java.io.UncheckedIOException if the snapshot cannot be written
+   */
+  public int exportColumnar(Schema schema, Path path) {
+
+	  ColumnarSnapshot previous = ColumnarSnapshot.openPrevious(path, schema);
+	  ColumnarSnapshot.Writer writer = null;
+	  try
+	  {
+		  writer = new ColumnarSnapshot.Writer(path, schema);
+		  int exported;
+		  synchronized (bufferLock)
+		  {
+			  exported = doExportColumnar(previous, writer);
+		  }
+		  
+		  // The old snapshot is closed before the new one replaces it
+		  if (null != previous)
+		  {
+			  previous.close();
+		  }
+		  writer.finish();
+		  return exported;
+	  }
+	  finally
+	  {
+		  if (null != writer)
+		  {
+			  writer.abort();
+		  }
+		  if (null != previous)
+		  {
+			  previous.close();
+		  }
+	  }
+
+  } // public int exportColumnar(Schema schema, Path path)
+
+  /**
+   * Helper method for exportColumnar; walks the directory, writing or
+   * copying one chunk per data page.
+   */
+  protected int doExportColumnar(ColumnarSnapshot previous, ColumnarSnapshot.Writer writer) {
+
+	  DirPage directoryPage = new DirPage();
+	  HeapLog.LogPage dataPage = new HeapLog.LogPage();
+	  ArrayList<byte[]> records = new ArrayList<byte[]>();
+	  PageId directoryPageId = new PageId(headId.pid);
+	  int exported = 0;
+
+	  while (INVALID_PAGEID != directoryPageId.pid)
+	  {
+		  Minibase.BufferManager.pinPage(directoryPageId, directoryPage, PIN_DISKIO);
+		  try
+		  {
+			  for (int i = 0; i < directoryPage.getEntryCnt(); i++)
+			  {
+				  PageId dataPageId = directoryPage.getPageId(i);
+				  short recCnt = directoryPage.getRecCnt(i);
+				  short freeCnt = directoryPage.getFreeCnt(i);
+
+				  // Checksum the page, and copy its records out only if the
+				  // previous snapshot's chunk for it is stale
+				  int chunk = -1;
+				  records.clear();
+				  Minibase.BufferManager.pinPage(dataPageId, dataPage, PIN_DISKIO);
+				  try
+				  {
+					  CRC32 crc = new CRC32();
+					  crc.update(dataPage.getImage());
+					  int checksum = (int) crc.getValue();
+					  if (null != previous)
+					  {
+						  chunk = previous.findChunk(dataPageId.pid, recCnt, freeCnt, checksum);
+					  }
+					  if (chunk < 0)
+					  {
+						  for (RID rid = dataPage.firstRecord(); rid != null; rid = dataPage.nextRecord(rid))
+						  {
+							  records.add(dataPage.selectRecord(rid).clone());
+						  }
+						  writer.writeChunk(dataPageId.pid, recCnt, freeCnt, checksum, records);
+						  exported++;
+					  }
+				  }
+				  finally
+				  {
+					  Minibase.BufferManager.unpinPage(dataPageId, UNPIN_CLEAN);
+				  }
+				  if (chunk >= 0)
+				  {
+					  writer.copyChunk(previous, chunk);
+				  }
+			  }
+			  directoryPageId = directoryPage.getNextPage();
+		  }
+		  finally
+		  {
+			  Minibase.BufferManager.unpinPage(directoryPage.getCurPage(), UNPIN_CLEAN);
+		  }
+	  }
+	  return exported;
+
+  } // protected int doExportColumnar(ColumnarSnapshot previous, ColumnarSnapshot.Writer writer)
 
   /**
    * Initiates a sequential scan of the heap file.
+   * HeapScan is not part of this source tree, so scans do not consult the
+   * directory summaries.  They do not need per-page liveness flags either:
+   * a data page is deleted as soon as its last record is (see
+   * updateDirEntry), so every page a scan visits holds a live record.
    */
   public HeapScan openScan() {
     return new HeapScan(this);
@@ -286,8 +836,8 @@ public class HeapFile implements GlobalConst {
    * Searches the directory for the first data page with enough free space to store a
    * record of the given size. If no suitable page is found, this creates a new
    * data page.
-   * A more efficient implementation would start with a directory page that is in the
-   * buffer pool.
+   * Directory pages whose cached summary shows no entry with enough free space
+   * are skipped without being pinned.
    * 
    * @throws IllegalArgumentException if the record is too 
    * large to fit on one data page
@@ -295,7 +845,7 @@ public class HeapFile implements GlobalConst {
   protected PageId getAvailPage(int reclen) {
 	  
 	  DirPage directoryPage = new DirPage();
-	  PageId nextDirectoryPageId = new PageId();
+	  PageId directoryPageId = new PageId(headId.pid);
 	  
 	  // Throw an exception if the reclen is greater than the page size minus the header and 1 slot
 	  if (reclen > PAGE_SIZE - 20 /*header size*/ - 4 /*slot size*/)
@@ -303,11 +853,18 @@ public class HeapFile implements GlobalConst {
 		  throw new IllegalArgumentException("Record size exceeds page size!");
 	  }
 	  
-	  // Read the head directory page
-	  Minibase.BufferManager.pinPage(headId, directoryPage, PIN_DISKIO); 
-	  
-	  do 
+	  while (INVALID_PAGEID != directoryPageId.pid)
 	  {
+		  // Skip a directory page known to be too full, following the cached link
+		  DirSummary summary = getDirSummary(directoryPageId);
+		  if (null != summary && summary.maxFreeCnt < reclen + 4 /*account for slot size*/)
+		  {
+			  directoryPageId = new PageId(summary.nextPid);
+			  continue;
+		  }
+		  
+		  Minibase.BufferManager.pinPage(directoryPageId, directoryPage, PIN_DISKIO); 
+		  
 		  // Look for the a page with enough free space to store a record of the given size
 		  for (int i = 0; i < directoryPage.getEntryCnt(); i++)
 		  {
@@ -316,29 +873,92 @@ public class HeapFile implements GlobalConst {
 				  // Cache return value before unpinning
 				  PageId availablePageId = directoryPage.getPageId(i);
 				  // Unpin the page to leave it the way we found it
-			      Minibase.BufferManager.unpinPage(directoryPage.getCurPage(), UNPIN_CLEAN);
+			      Minibase.BufferManager.unpinPage(directoryPageId, UNPIN_CLEAN);
 				  return availablePageId;
 			  }
 		  }
-		  // No page found with sufficient space so move to the next directory page
-		  nextDirectoryPageId = directoryPage.getNextPage();
-		  
-		  if (INVALID_PAGEID != nextDirectoryPageId.pid) 
-		  {
-		      // unpin the current directory page, pin the next directory page
-			  // for the next pass through the loop
-		      Minibase.BufferManager.unpinPage(directoryPage.getCurPage(), UNPIN_CLEAN);
-		      Minibase.BufferManager.pinPage(nextDirectoryPageId, directoryPage, PIN_DISKIO);
-		  }
-	  } while (INVALID_PAGEID != nextDirectoryPageId.pid);
+		  // No page found with sufficient space; remember that and move to the next directory page
+		  summarizeDirPage(directoryPage);
+		  PageId nextDirectoryPageId = directoryPage.getNextPage();
+	      Minibase.BufferManager.unpinPage(directoryPageId, UNPIN_CLEAN);
+		  directoryPageId = nextDirectoryPageId;
+	  }
 	  
-	  // Unpin the directory page to leave it the way we found it
-      Minibase.BufferManager.unpinPage(directoryPage.getCurPage(), UNPIN_CLEAN);
 	  // If we hit this point then no page with sufficient space was found, must create
 	  return insertPage();	  
 
   } // protected PageId getAvailPage(int reclen)
 
+  /**
+   * Gets the cached summary of the given directory page, or null if there is none.
+   */
+  protected static DirSummary getDirSummary(PageId dirId) {
+	  synchronized (dirSummaries)
+	  {
+		  checkSummaryOwner();
+		  return dirSummaries.get(dirId.pid);
+	  }
+  }
+
+  /**
+   * Caches a summary of the given (pinned) directory page.
+   */
+  protected static void summarizeDirPage(DirPage dirPage) {
+	  
+	  DirSummary summary = new DirSummary();
+	  for (int i = 0; i < dirPage.getEntryCnt(); i++)
+	  {
+		  if (dirPage.getFreeCnt(i) > summary.maxFreeCnt)
+		  {
+			  summary.maxFreeCnt = dirPage.getFreeCnt(i);
+		  }
+	  }
+	  summary.nextPid = dirPage.getNextPage().pid;
+	  summary.entriesFull = dirPage.getEntryCnt() >= dirPage.getMaxEntries();
+	  
+	  synchronized (dirSummaries)
+	  {
+		  checkSummaryOwner();
+		  dirSummaries.put(dirPage.getCurPage().pid, summary);
+	  }
+
+  } // protected static void summarizeDirPage(DirPage dirPage)
+
+  /**
+   * Drops the cached summary of the given directory page; called whenever
+   * its entries or links change, or it is freed.
+   */
+  protected static void forgetDirPage(PageId dirId) {
+	  synchronized (dirSummaries)
+	  {
+		  checkSummaryOwner();
+		  dirSummaries.remove(dirId.pid);
+	  }
+  }
+
+  /**
+   * Drops every cached summary; called when pages are rewritten wholesale,
+   * as by log replay.
+   */
+  protected static void clearDirSummaries() {
+	  synchronized (dirSummaries)
+	  {
+		  dirSummaries.clear();
+	  }
+  }
+
+  /**
+   * Empties the summary cache if it was filled under a different buffer
+   * manager than the current one.  Caller must hold the dirSummaries lock.
+   */
+  protected static void checkSummaryOwner() {
+	  if (summaryOwner != Minibase.BufferManager)
+	  {
+		  dirSummaries.clear();
+		  summaryOwner = Minibase.BufferManager;
+	  }
+  }
+
   /**
    * Helper method for finding directory entries of data pages.
    * 
@@ -402,9 +1022,10 @@ public class HeapFile implements GlobalConst {
 	  // Update the directory page
 	  directoryPage.setRecCnt(index, (short) (directoryPage.getRecCnt(index) + deltaRec));
 	  directoryPage.setFreeCnt(index, (short) freecnt); 
+	  summarizeDirPage(directoryPage);
 	  
 	  //Unpin the directory page to save the changes (was pinned by findDirEntry)
-      Minibase.BufferManager.unpinPage(directoryPage.getCurPage(), UNPIN_DIRTY);
+      unpinDirty(directoryPage.getCurPage());
      
 	  // If the data page is now empty, delete it
 	  if (directoryPage.getRecCnt(index) < 1)
@@ -428,8 +1049,18 @@ public class HeapFile implements GlobalConst {
 	  PageId dataPageId = new PageId();
 	  PageId nextDirectoryPageId = new PageId();
 	  
-	  // read the first directory page
-	  Minibase.BufferManager.pinPage(headId, directoryPage, PIN_DISKIO); 
+	  // Skip directory pages known to have no free entry, as long as another
+	  // follows; the tail is always read since a new page may be linked to it
+	  PageId firstDirectoryPageId = new PageId(headId.pid);
+	  DirSummary summary = getDirSummary(firstDirectoryPageId);
+	  while (null != summary && summary.entriesFull && INVALID_PAGEID != summary.nextPid)
+	  {
+		  firstDirectoryPageId = new PageId(summary.nextPid);
+		  summary = getDirSummary(firstDirectoryPageId);
+	  }
+	  
+	  // read the first directory page that may have room
+	  Minibase.BufferManager.pinPage(firstDirectoryPageId, directoryPage, PIN_DISKIO); 
 
 	  do 
 	  {
@@ -453,17 +1084,21 @@ public class HeapFile implements GlobalConst {
 			  // Maintain the directoryPage's entry count since we are adding a page
 			  directoryPage.setEntryCnt((short)(directoryPage.getEntryCnt() + 1));
 			  
+			  // The new entry has free space the summary does not know about
+			  forgetDirPage(directoryPage.getCurPage());
+			  
 			  // Copy our data page changes into the frame and pin it
 			  Minibase.BufferManager.pinPage(dataPageId, dataPage, PIN_MEMCPY);
 			  
 			  // Unpin the directory page and the added data page
-		      Minibase.BufferManager.unpinPage(directoryPage.getCurPage(), UNPIN_DIRTY);
-		      Minibase.BufferManager.unpinPage(dataPage.getCurPage(), UNPIN_DIRTY);		      
+		      unpinDirty(directoryPage.getCurPage());
+		      unpinDirty(dataPage.getCurPage());		      
 			  
 			  // We have inserted the page so return the pageId
 			  return dataPageId;
 		  }
-		  // Directory page was full so move to the next directory page
+		  // Directory page was full so remember that and move to the next directory page
+		  summarizeDirPage(directoryPage);
 		  nextDirectoryPageId = directoryPage.getNextPage();
 		  
 		  if (INVALID_PAGEID != nextDirectoryPageId.pid) 
@@ -481,12 +1116,13 @@ public class HeapFile implements GlobalConst {
 			  
 			  // Set the link to the next page in the current directory page
 			  directoryPage.setNextPage(nextDirectoryPageId);
+			  forgetDirPage(directoryPage.getCurPage());
 			  
 			  // Save our current page id
 			  PageId currentDirectoryPageId = directoryPage.getCurPage();
 			  
 			  //Unpin the current directory page, so changes will be saved
-			  Minibase.BufferManager.unpinPage(currentDirectoryPageId, UNPIN_DIRTY);
+			  unpinDirty(currentDirectoryPageId);
 			  
 			  // Clear the current page
 			  directoryPage = null;
@@ -544,14 +1180,15 @@ public class HeapFile implements GlobalConst {
 			  
 			  // Set the previous next to the next, and the next previous to the previous
 			  previousPage.setNextPage(nextPage.getCurPage());
+			  forgetDirPage(previousPage.getCurPage());
 			  nextPage.setPrevPage(previousPage.getCurPage());
 			  
 			  // Unpin (and hence save) the previous and next pages
-			  Minibase.BufferManager.unpinPage(nextPage.getCurPage(), UNPIN_DIRTY);	
-			  Minibase.BufferManager.unpinPage(previousPage.getCurPage(), UNPIN_DIRTY);	
+			  unpinDirty(nextPage.getCurPage());	
+			  unpinDirty(previousPage.getCurPage());	
 			  
 			  // Delete the directory page
-			  Minibase.BufferManager.freePage(dirId);		  
+			  freeDirtyPage(dirId);		  
 		  }
 		  // Directory page is the tail
 		  else if (INVALID_PAGEID != dirPage.getPrevPage().pid)
@@ -562,31 +1199,17 @@ public class HeapFile implements GlobalConst {
 			  
 			  // Clear the next page on the previous page (making it the tail)
 			  previousPage.setNextPage(invalidPageId);
+			  forgetDirPage(dirPage.getPrevPage());
 			  
 			  // Unpin (and hence save) the previous page
-			  Minibase.BufferManager.unpinPage(dirPage.getPrevPage(), UNPIN_DIRTY);
+			  unpinDirty(dirPage.getPrevPage());
 			  
 			  // Delete the directory page
-			  Minibase.BufferManager.freePage(dirId);		  
+			  freeDirtyPage(dirId);		  
 		  }
-		  // Directory page is the head
-		  else if (INVALID_PAGEID != dirPage.getNextPage().pid)
-		  {			 
-			  // Get the next page
-			  DirPage nextPage = new DirPage();
-			  Minibase.BufferManager.pinPage(dirPage.getNextPage(), nextPage, PIN_DISKIO);
-			  
-			  // Clear the previous page on the next page (making it the head)
-			  nextPage.setPrevPage(invalidPageId);
-			  
-			// Unpin (and hence save) the next page
-			  Minibase.BufferManager.unpinPage(dirPage.getNextPage(), UNPIN_DIRTY);
-			  
-			  // Delete the directory page
-			  Minibase.BufferManager.freePage(dirId);
-		  }
-		  // In the final case where this is the last directory page 
-		  // the directory page is left with the HeapFile so that it has at least one directory page.
+		  // In the final case where this is the head directory page, it is kept
+		  // (even if more directory pages follow) so that headId and the file
+		  // library entry stay valid.
 		  else // Clear the entry for this data page
 		  {
 			  clearDirectoryEntry = true;
@@ -597,38 +1220,134 @@ public class HeapFile implements GlobalConst {
 		  clearDirectoryEntry = true;
 	  }
 	
+	  // The directory page was either freed or had an entry removed
+	  forgetDirPage(dirId);
+	
 	  if (clearDirectoryEntry) // Not necessary to clear entry when we are deleting the directory page
 	  {
 		  // Nullify page id, rec count, and free count
 		  dirPage.setPageId(index, invalidPageId);
 		  dirPage.setRecCnt(index, (short) 0);
 		  dirPage.setFreeCnt(index, (short) 0);
-		  // Compact the directory
+		  // Compact the directory and drop the now unused trailing entry
 		  dirPage.compact(index);
+		  dirPage.setEntryCnt((short) (dirPage.getEntryCnt() - 1));
 		  
 		  // Pin and unpin to save the changes to the directory page
 		  Minibase.BufferManager.pinPage(dirId, dirPage, PIN_MEMCPY);
-		  Minibase.BufferManager.unpinPage(dirId, UNPIN_DIRTY);
+		  unpinDirty(dirId);
 	  }
 	  // Delete the data page
-	  Minibase.BufferManager.freePage(pageno);
+	  freeDirtyPage(pageno);
 
   } // protected void deletePage(PageId, PageId, DirPage, int)
 
+  /**
+   * Writes every dirty page to disk and empties the log, so a later open has
+   * nothing to replay.  Does nothing if the file is not logged.
+   */
+  public void checkpoint() {
+	  
+	  if (null != log)
+	  {
+		  synchronized (bufferLock)
+		  {
+			  log.checkpoint();
+		  }
+	  }
+
+  } // public void checkpoint()
+
+  /**
+   * Starts tracking the pages changed by a new operation.
+   */
+  protected void beginOp() {
+	  opPages.clear();
+  }
+
+  /**
+   * Ends the current operation, appending the after-images of the pages it
+   * dirtied and the ids of those it freed to the log.  The log position to
+   * wait for is left for getCommitLsn.
+   */
+  protected void endOp() {
+	  
+	  long lsn = 0;
+	  if (null != log && !opPages.isEmpty())
+	  {
+		  LinkedHashMap<Integer, byte[]> images = new LinkedHashMap<Integer, byte[]>();
+		  for (Map.Entry<Integer, Boolean> page : opPages.entrySet())
+		  {
+			  images.put(page.getKey(), page.getValue()
+					  ? HeapLog.captureImage(new PageId(page.getKey())) : null);
+		  }
+		  lsn = log.append(images);
+	  }
+	  opPages.clear();
+	  commitLsn.set(lsn);
+
+  } // protected void endOp()
+
+  /**
+   * Gets the log position of the last operation run by this thread.
+   */
+  protected long getCommitLsn() {
+	  Long lsn = commitLsn.get();
+	  return (null == lsn) ? 0 : lsn;
+  }
+
+  /**
+   * Waits until the log is durable up to the given position.  Must be
+   * called without holding bufferLock, so other operations can join the
+   * same log force.
+   */
+  protected void waitForCommit(long lsn) {
+	  if (null != log && lsn > 0)
+	  {
+		  log.commit(lsn);
+	  }
+  }
+
+  /**
+   * Unpins a page this operation changed, noting it for the log.
+   */
+  protected void unpinDirty(PageId pageno) {
+	  Minibase.BufferManager.unpinPage(pageno, UNPIN_DIRTY);
+	  opPages.remove(pageno.pid);
+	  opPages.put(pageno.pid, true);
+  }
+
+  /**
+   * Frees a page this operation released, noting it for the log.
+   */
+  protected void freeDirtyPage(PageId pageno) {
+	  Minibase.BufferManager.freePage(pageno);
+	  opPages.remove(pageno.pid);
+	  opPages.put(pageno.pid, false);
+  }
+
   /**
    * Creates an empty heapfile.  Used by HeapFile constructor.
    */
   protected void CreateEmptyHeapFile() {
 
-	  // Add a new file entry for this heap file
-	  DirPage headDirectoryPage = new DirPage();
-	  headId = Minibase.DiskManager.allocate_page();
-	  Minibase.DiskManager.add_file_entry(fileName, headId);
-	  
-	  // Initialize the head page as a directory page and save the changes
-	  headDirectoryPage.setCurPage(headId);
-	  Minibase.BufferManager.pinPage(headId, headDirectoryPage, PIN_MEMCPY);
-	  Minibase.BufferManager.unpinPage(headId, UNPIN_DIRTY);
+	  synchronized (bufferLock)
+	  {
+		  beginOp();
+		  
+		  // Add a new file entry for this heap file
+		  DirPage headDirectoryPage = new DirPage();
+		  headId = Minibase.DiskManager.allocate_page();
+		  Minibase.DiskManager.add_file_entry(fileName, headId);
+		  
+		  // Initialize the head page as a directory page and save the changes
+		  headDirectoryPage.setCurPage(headId);
+		  Minibase.BufferManager.pinPage(headId, headDirectoryPage, PIN_MEMCPY);
+		  unpinDirty(headId);
+		  
+		  endOp();
+	  }
+	  waitForCommit(getCommitLsn());
 
   } // protected void CreateEmptyHeapFile()
   
@@ -0,0 +1,315 @@
+package heap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import global.GlobalConst;
+import global.Minibase;
+import global.PageId;
+
+/**
+ * A redo log for heap file operations, kept in its own file outside the
+ * buffer pool. <br>
+ * Each heap file operation appends one frame holding the after-image of
+ * every page it dirtied and the id of every page it freed.  A frame is
+ * durable once commit returns for it; commit batches the fsyncs of every
+ * frame appended while an earlier fsync was running (group commit), so
+ * concurrent callers share a single force of the log. <br>
+ * Frame layout: payload length (int), CRC32 of the payload (int), then the
+ * payload entries: REC_IMAGE, page id, PAGE_SIZE bytes; or REC_FREE, page id.
+ * A short or corrupt frame ends the log; it was never committed. <br>
+ * The buffer manager may write a dirty page before its frame is durable, so
+ * replay is followed by HeapFile.recoverDirectory to bring the directory
+ * back in line with the data pages.
+ */
+public class HeapLog implements GlobalConst {
+
+  /** Log entry holding a page's after-image. */
+  protected static final int REC_IMAGE = 1;
+
+  /** Log entry for a freed page. */
+  protected static final int REC_FREE = 2;
+
+  /** Size of a frame's length and checksum. */
+  protected static final int FRAME_HEADER = 8;
+
+  // --------------------------------------------------------------------------
+
+  /** The log file. */
+  protected FileChannel channel;
+
+  /** Log position of the start of the file; positions keep growing across checkpoints. */
+  protected long base;
+
+  /** Log position just past the last appended frame (written under this). */
+  protected volatile long appended;
+
+  /** Log position up to which the log is known to be on disk (guarded by flushLock). */
+  protected long flushed;
+
+  /** Is some thread forcing the log right now? (guarded by flushLock) */
+  protected boolean flushing;
+
+  /** Guards flushed and flushing; waiting committers wait on it. */
+  protected final Object flushLock = new Object();
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Gives direct access to a pinned page's bytes, for taking and restoring
+   * after-images.
+   */
+  protected static class LogPage extends HFPage {
+
+    /** Copies the page's bytes. */
+    protected byte[] getImage() {
+      byte[] image = new byte[PAGE_SIZE];
+      System.arraycopy(data, 0, image, 0, PAGE_SIZE);
+      return image;
+    }
+
+    /** Overwrites the page's bytes. */
+    protected void setImage(byte[] image) {
+      System.arraycopy(image, 0, data, 0, PAGE_SIZE);
+    }
+
+  } // protected static class LogPage extends HFPage
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Opens (or creates) the log at the given path.
+   */
+  public HeapLog(Path path) {
+    try {
+      channel = FileChannel.open(path, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+      appended = channel.size();
+      flushed = appended;
+    } catch (IOException exc) {
+      throw new UncheckedIOException("Cannot open heap log " + path, exc);
+    }
+  }
+
+  /**
+   * Returns true if the log holds frames not yet covered by a checkpoint,
+   * meaning the last session did not shut down cleanly.
+   */
+  public synchronized boolean needsRecovery() {
+    return appended > base;
+  }
+
+  /**
+   * Appends one operation's frame; it is not durable until commit is
+   * called with the returned position.
+   *
+   * @param pages page ids mapped to their after-images, or to null if freed
+   * @return log position just past the frame
+   */
+  public synchronized long append(Map<Integer, byte[]> pages) {
+
+    int length = 0;
+    for (byte[] image : pages.values()) {
+      length += 8 + (null == image ? 0 : PAGE_SIZE);
+    }
+
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + length);
+    frame.position(FRAME_HEADER);
+    for (Map.Entry<Integer, byte[]> page : pages.entrySet()) {
+      frame.putInt(null == page.getValue() ? REC_FREE : REC_IMAGE);
+      frame.putInt(page.getKey());
+      if (null != page.getValue()) {
+        frame.put(page.getValue());
+      }
+    }
+    CRC32 crc = new CRC32();
+    crc.update(frame.array(), FRAME_HEADER, length);
+    frame.putInt(0, length);
+    frame.putInt(4, (int) crc.getValue());
+    frame.flip();
+
+    try {
+      long position = appended - base;
+      while (frame.hasRemaining()) {
+        position += channel.write(frame, position);
+      }
+    } catch (IOException exc) {
+      throw new UncheckedIOException("Cannot append to heap log", exc);
+    }
+    appended += FRAME_HEADER + length;
+    return appended;
+
+  } // public synchronized long append(Map<Integer, byte[]> pages)
+
+  /**
+   * Waits until the log is on disk up to the given position.  The first
+   * waiter forces everything appended so far; waiters arriving meanwhile are
+   * covered by the next force, so one fsync serves a whole group.
+   */
+  public void commit(long lsn) {
+
+    boolean interrupted = false;
+    while (true) {
+      synchronized (flushLock) {
+        while (flushed < lsn && flushing) {
+          try {
+            flushLock.wait();
+          } catch (InterruptedException exc) {
+            interrupted = true;
+          }
+        }
+        if (flushed >= lsn) {
+          break;
+        }
+        flushing = true;
+      }
+
+      // Lead this group: everything appended up to now goes in one force
+      long target = appended;
+      boolean forced = false;
+      try {
+        channel.force(false);
+        forced = true;
+      } catch (IOException exc) {
+        throw new UncheckedIOException("Cannot force heap log", exc);
+      } finally {
+        synchronized (flushLock) {
+          flushing = false;
+          if (forced && target > flushed) {
+            flushed = target;
+          }
+          flushLock.notifyAll();
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+  } // public void commit(long lsn)
+
+  /**
+   * Redoes every complete frame: each page is restored to its last logged
+   * image, unless the last frame to mention it freed it.  Pages are written
+   * through the buffer manager and left dirty.
+   */
+  public synchronized void replay() {
+
+    // Find each page's final state; later frames override earlier ones
+    LinkedHashMap<Integer, byte[]> pages = new LinkedHashMap<Integer, byte[]>();
+    try {
+      long position = 0;
+      long size = channel.size();
+      ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+      while (position + FRAME_HEADER <= size) {
+        header.clear();
+        readFully(header, position);
+        int length = header.getInt(0);
+        int checksum = header.getInt(4);
+        if (length < 0 || position + FRAME_HEADER + length > size) {
+          break;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload, position + FRAME_HEADER);
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, length);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+
+        payload.flip();
+        while (payload.hasRemaining()) {
+          int type = payload.getInt();
+          int pid = payload.getInt();
+          byte[] image = null;
+          if (REC_IMAGE == type) {
+            image = new byte[PAGE_SIZE];
+            payload.get(image);
+          }
+          pages.remove(pid);
+          pages.put(pid, image);
+        }
+        position += FRAME_HEADER + length;
+      }
+    } catch (IOException exc) {
+      throw new UncheckedIOException("Cannot read heap log", exc);
+    }
+
+    // Write the surviving images back through the buffer pool
+    LogPage page = new LogPage();
+    for (Map.Entry<Integer, byte[]> entry : pages.entrySet()) {
+      if (null != entry.getValue()) {
+        PageId pageno = new PageId(entry.getKey());
+        Minibase.BufferManager.pinPage(pageno, page, PIN_DISKIO);
+        page.setImage(entry.getValue());
+        Minibase.BufferManager.unpinPage(pageno, UNPIN_DIRTY);
+      }
+    }
+
+  } // public synchronized void replay()
+
+  /**
+   * Writes every dirty page in the buffer pool to disk, then empties the
+   * log.  The caller must keep heap file operations from running meanwhile.
+   */
+  public synchronized void checkpoint() {
+
+    // Release anyone still waiting on the frames about to be dropped
+    commit(appended);
+
+    Minibase.BufferManager.flushAllPages();
+    try {
+      channel.truncate(0);
+      channel.force(true);
+    } catch (IOException exc) {
+      throw new UncheckedIOException("Cannot truncate heap log", exc);
+    }
+    base = appended;
+
+  } // public synchronized void checkpoint()
+
+  /**
+   * Checkpoints and closes the log.
+   */
+  public synchronized void close() {
+    checkpoint();
+    try {
+      channel.close();
+    } catch (IOException exc) {
+      throw new UncheckedIOException("Cannot close heap log", exc);
+    }
+  }
+
+  /**
+   * Takes the after-image of the given page, which must not be pinned for
+   * writing by anyone else.
+   */
+  protected static byte[] captureImage(PageId pageno) {
+    LogPage page = new LogPage();
+    Minibase.BufferManager.pinPage(pageno, page, PIN_DISKIO);
+    byte[] image = page.getImage();
+    Minibase.BufferManager.unpinPage(pageno, UNPIN_CLEAN);
+    return image;
+  }
+
+  /**
+   * Fills the given buffer from the log file, starting at the given position.
+   */
+  protected void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("Unexpected end of heap log");
+      }
+      position += read;
+    }
+  }
+
+} // public class HeapLog implements GlobalConst
@@ -0,0 +1,23 @@
+package heap;
+
+import global.RID;
+
+/**
+ * Receives the results of a batched record lookup (see
+ * HeapFile.selectRecords).
+ */
+public interface RecordConsumer {
+
+  /**
+   * Called with a copy of the record for the rid at the given index of the
+   * requested batch.
+   */
+  public void accept(int index, RID rid, byte[] record);
+
+  /**
+   * Called instead of accept when the rid at the given index is invalid or
+   * null; the rest of the batch is still processed.
+   */
+  public void invalid(int index, RID rid, IllegalArgumentException exc);
+
+} // public interface RecordConsumer
@@ -0,0 +1,242 @@
+package heap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A fixed-width record layout: each column is a run of bytes at a fixed
+ * offset in every record.  Numeric columns are stored big-endian. <br>
+ * Used by HeapFile.exportColumnar to split records into columns, and by
+ * ColumnarSnapshot to compare column values.
+ */
+public class Schema {
+
+  /** A 4-byte signed integer column. */
+  public static final int INT = 1;
+
+  /** A 2-byte signed integer column. */
+  public static final int SHORT = 2;
+
+  /** A fixed-width byte string column, compared as unsigned bytes. */
+  public static final int BYTES = 3;
+
+  // --------------------------------------------------------------------------
+
+  /** The columns, in the order they were added. */
+  protected ArrayList<Column> columns;
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * One column of the layout.
+   */
+  protected static class Column {
+
+    /** Name of the column. */
+    protected String name;
+
+    /** INT, SHORT, or BYTES. */
+    protected int type;
+
+    /** Offset of the column in each record. */
+    protected int offset;
+
+    /** Width of the column in bytes. */
+    protected int width;
+
+    public Column(String name, int type, int offset, int width) {
+      this.name = name;
+      this.type = type;
+      this.offset = offset;
+      this.width = width;
+    }
+
+  } // protected static class Column
+
+  // --------------------------------------------------------------------------
+
+  /**
+   * Constructs a schema with no columns.
+   */
+  public Schema() {
+    columns = new ArrayList<Column>();
+  }
+
+  /**
+   * Adds a column; INT columns are 4 bytes wide and SHORT columns 2.
+   *
+   * @return the index of the new column
+   * @throws IllegalArgumentException if the type, offset, or width is
+   * invalid, or the name is already used
+   */
+  public int addColumn(String name, int type, int offset, int width) {
+
+    if (INT != type && SHORT != type && BYTES != type) {
+      throw new IllegalArgumentException("Invalid type for column " + name);
+    }
+    if ((INT == type && 4 != width) || (SHORT == type && 2 != width)
+        || (BYTES == type && width < 1)) {
+      throw new IllegalArgumentException("Invalid width for column " + name);
+    }
+    if (offset < 0) {
+      throw new IllegalArgumentException("Invalid offset for column " + name);
+    }
+    if (null == name) {
+      throw new IllegalArgumentException("Column name is null");
+    }
+    if (getColumnIndex(name) >= 0) {
+      throw new IllegalArgumentException("Duplicate column name " + name);
+    }
+    columns.add(new Column(name, type, offset, width));
+    return columns.size() - 1;
+
+  } // public int addColumn(String name, int type, int offset, int width)
+
+  /**
+   * Gets the number of columns.
+   */
+  public int getColumnCount() {
+    return columns.size();
+  }
+
+  /**
+   * Gets the index of the named column, or -1 if there is none.
+   */
+  public int getColumnIndex(String name) {
+    for (int i = 0; i < columns.size(); i++) {
+      if (columns.get(i).name.equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Gets the name of the given column.
+   */
+  public String getName(int column) {
+    return columns.get(column).name;
+  }
+
+  /**
+   * Gets the type of the given column.
+   */
+  public int getType(int column) {
+    return columns.get(column).type;
+  }
+
+  /**
+   * Gets the offset of the given column in each record.
+   */
+  public int getOffset(int column) {
+    return columns.get(column).offset;
+  }
+
+  /**
+   * Gets the width of the given column in bytes.
+   */
+  public int getWidth(int column) {
+    return columns.get(column).width;
+  }
+
+  /**
+   * Gets the shortest record length that holds every column.
+   */
+  public int getRecordLength() {
+    int length = 0;
+    for (Column column : columns) {
+      length = Math.max(length, column.offset + column.width);
+    }
+    return length;
+  }
+
+  /**
+   * Compares two values of the given column, each stored at an offset in
+   * its own array.
+   *
+   * @return negative, zero, or positive as a is less than, equal to, or
+   * greater than b
+   */
+  public int compare(int column, byte[] a, int aOffset, byte[] b, int bOffset) {
+
+    switch (getType(column)) {
+      case INT:
+        return Integer.compare(ByteBuffer.wrap(a).getInt(aOffset),
+            ByteBuffer.wrap(b).getInt(bOffset));
+      case SHORT:
+        return Short.compare(ByteBuffer.wrap(a).getShort(aOffset),
+            ByteBuffer.wrap(b).getShort(bOffset));
+      default:
+        for (int i = 0; i < getWidth(column); i++) {
+          int diff = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+          if (0 != diff) {
+            return diff;
+          }
+        }
+        return 0;
+    }
+
+  } // public int compare(int column, byte[] a, int aOffset, byte[] b, int bOffset)
+
+  /**
+   * Encodes an INT column value.
+   */
+  public static byte[] intValue(int value) {
+    return ByteBuffer.allocate(4).putInt(value).array();
+  }
+
+  /**
+   * Encodes a SHORT column value.
+   */
+  public static byte[] shortValue(short value) {
+    return ByteBuffer.allocate(2).putShort(value).array();
+  }
+
+  /**
+   * Decodes an INT column value.
+   */
+  public static int getInt(byte[] value) {
+    return ByteBuffer.wrap(value).getInt();
+  }
+
+  /**
+   * Decodes a SHORT column value.
+   */
+  public static short getShort(byte[] value) {
+    return ByteBuffer.wrap(value).getShort();
+  }
+
+  /**
+   * Returns true if the given object is a schema with the same columns.
+   */
+  public boolean equals(Object other) {
+
+    if (!(other instanceof Schema)) {
+      return false;
+    }
+    Schema schema = (Schema) other;
+    if (schema.getColumnCount() != getColumnCount()) {
+      return false;
+    }
+    for (int i = 0; i < getColumnCount(); i++) {
+      if (!schema.getName(i).equals(getName(i))
+          || schema.getType(i) != getType(i)
+          || schema.getOffset(i) != getOffset(i)
+          || schema.getWidth(i) != getWidth(i)) {
+        return false;
+      }
+    }
+    return true;
+
+  } // public boolean equals(Object other)
+
+  public int hashCode() {
+    int hash = 0;
+    for (Column column : columns) {
+      hash = 31 * hash + column.name.hashCode();
+      hash = 31 * hash + column.offset;
+    }
+    return hash;
+  }
+
+} // public class Schema